@@ -2,6 +2,9 @@ import java.io.Serializable;
 
 public class Heatmap implements Serializable {
 
+    // Pinned to the UID of the original class so that old-style heatmap files can still be deserialized
+    private static final long serialVersionUID = -8118850565527212763L;
+
     private final int WIDTH, HEIGHT, HEATMAP_OFFSET_X, HEATMAP_OFFSET_Y;
     protected final static int TYPE_A = 0, TYPE_B = 1;
     private int[][] heatmap;
@@ -74,14 +77,26 @@ public class Heatmap implements Serializable {
      * @return int array holding {maxVal, maxX, maxY} where the latter two are the coordinate at which the max value exists
      */
     protected int[] getMaxVal(){
-        int maxVal = 0, maxX = 0, maxY = 0;
-        for (int y = 0; y < HEIGHT; y++)
-            for (int x = 0; x < WIDTH; x++)
-                if (heatmapCoordsGet(x, y) > maxVal) {
-                    maxVal = heatmapCoordsGet(x, y);
+        // The heatmap is stored column by column, so scan it that way. The first pass is branch-free so the JIT can vectorize it
+        int maxVal = 0;
+        for (int x = 0; x < WIDTH; x++) {
+            int[] column = heatmap[x];
+            for (int y = 0; y < HEIGHT; y++)
+                maxVal = Math.max(maxVal, column[y]);
+        }
+        if (maxVal == 0)
+            return new int[]{0, 0, 0};
+        // Of the tiles holding the max, return the first in row-by-row order, as the row-by-row scan used to
+        int maxX = 0, maxY = HEIGHT;
+        for (int x = 0; x < WIDTH; x++) {
+            int[] column = heatmap[x];
+            for (int y = 0; y < maxY; y++)
+                if (column[y] == maxVal) {
                     maxX = x;
                     maxY = y;
+                    break;
                 }
+        }
         return new int[]{maxVal, maxX, maxY};
     }
 
@@ -89,17 +104,58 @@ public class Heatmap implements Serializable {
      * @return int array holding {minVal, minX, minY} where the latter two are the coordinate at which the minimum NON-ZERO value exists
      */
     protected int[] getMinVal(){
-        int minVal = Integer.MAX_VALUE, minX = 0, minY = 0;
-        for (int y = 0; y < HEIGHT; y++)
-            for (int x = 0; x < WIDTH; x++)
-                if (heatmapCoordsGet(x, y) != 0 && heatmapCoordsGet(x, y) < minVal) {
-                    minVal = heatmapCoordsGet(x, y);
+        int minVal = Integer.MAX_VALUE;
+        for (int x = 0; x < WIDTH; x++) {
+            int[] column = heatmap[x];
+            for (int y = 0; y < HEIGHT; y++)
+                minVal = Math.min(minVal, column[y] == 0 ? Integer.MAX_VALUE : column[y]);
+        }
+        if (minVal > Integer.MAX_VALUE - 100)
+            return new int[]{0, 0, 0};
+        int minX = 0, minY = HEIGHT;
+        for (int x = 0; x < WIDTH; x++) {
+            int[] column = heatmap[x];
+            for (int y = 0; y < minY; y++)
+                if (column[y] == minVal) {
                     minX = x;
                     minY = y;
+                    break;
                 }
-        if (minVal > Integer.MAX_VALUE - 100)
-            return new int[]{0, 0, 0};
-        else
-            return new int[]{minVal, minX, minY};
+        }
+        return new int[]{minVal, minX, minY};
+    }
+
+    /**
+     * @return The number of non-zero values in the heatmap
+     */
+    protected int getNumNonZero(){
+        int count = 0;
+        for (int x = 0; x < WIDTH; x++) {
+            int[] column = heatmap[x];
+            for (int y = 0; y < HEIGHT; y++)
+                count += (column[y] != 0 ? 1 : 0);
+        }
+        return count;
+    }
+
+    /**
+     * Compacts the non-zero values of the heatmap into parallel arrays, in column-by-column order
+     * @return int arrays {xs, ys, values} holding the heatmap-style coordinates and values of the non-zero tiles
+     */
+    protected int[][] getNonZeroTiles(){
+        int count = getNumNonZero();
+        int[] xs = new int[count], ys = new int[count], values = new int[count];
+        int i = 0;
+        for (int x = 0; x < WIDTH; x++) {
+            int[] column = heatmap[x];
+            for (int y = 0; y < HEIGHT; y++)
+                if (column[y] != 0) {
+                    xs[i] = x;
+                    ys[i] = y;
+                    values[i] = column[y];
+                    i++;
+                }
+        }
+        return new int[][]{xs, ys, values};
     }
 }
@@ -0,0 +1,117 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Times the dense-grid heatmap scans against the row-by-row loops they replaced, on a full size (2752 x 1664) grid.
+ * The arguments are the fraction of tiles to fill (default 0.05) and the number of timed runs (default 20)
+ */
+public class HeatmapBenchmark
+{
+	public static void main(String[] args)
+	{
+		double fillFraction = (args.length > 0 ? Double.parseDouble(args[0]) : 0.05);
+		int numRuns = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+
+		// Heatmap with offsets of 0, so that its RuneScape coordinates are the same as its heatmap-style coordinates
+		Heatmap heatmap = new Heatmap(HeatmapNew.HEATMAP_WIDTH, HeatmapNew.HEATMAP_HEIGHT, 0, 0);
+		Random random = new Random(0);
+		int numTiles = (int) (fillFraction * HeatmapNew.HEATMAP_WIDTH * HeatmapNew.HEATMAP_HEIGHT);
+		for (int i = 0; i < numTiles; i++)
+		{
+			// Skewed values, like real step counts
+			int value = 1 + (int) (Math.pow(random.nextDouble(), 4) * 10_000);
+			heatmap.set(value, random.nextInt(HeatmapNew.HEATMAP_WIDTH), random.nextInt(HeatmapNew.HEATMAP_HEIGHT));
+		}
+		System.out.printf("Grid %d x %d, %.1f%% filled, %d runs each%n", HeatmapNew.HEATMAP_WIDTH, HeatmapNew.HEATMAP_HEIGHT, fillFraction * 100, numRuns);
+
+		compare("getMaxVal", numRuns, () -> legacyGetMaxVal(heatmap), heatmap::getMaxVal);
+		compare("getMinVal", numRuns, () -> legacyGetMinVal(heatmap), heatmap::getMinVal);
+		compare("convertOldHeatmapToNew", Math.max(1, numRuns / 4),
+			() -> summarize(legacyConvertOldHeatmapToNew(heatmap)), () -> summarize(HeatmapNew.convertOldHeatmapToNew(heatmap)));
+	}
+
+	private static void compare(String name, int numRuns, Supplier<int[]> legacy, Supplier<int[]> current)
+	{
+		int[] legacyResult = legacy.get();
+		int[] currentResult = current.get();
+		if (!Arrays.equals(legacyResult, currentResult))
+		{
+			System.err.println(name + " results differ: " + Arrays.toString(legacyResult) + " vs " + Arrays.toString(currentResult));
+		}
+		double legacyMs = time(name + " (legacy)", numRuns, legacy);
+		double currentMs = time(name, numRuns, current);
+		System.out.printf("  %s speedup: %.2fx%n", name, legacyMs / currentMs);
+	}
+
+	/**
+	 * @return Median run time in milliseconds, after warming up
+	 */
+	private static double time(String name, int numRuns, Supplier<?> task)
+	{
+		for (int i = 0; i < numRuns; i++)
+		{
+			task.get();
+		}
+		long[] times = new long[numRuns];
+		for (int i = 0; i < numRuns; i++)
+		{
+			long startTime = System.nanoTime();
+			task.get();
+			times[i] = System.nanoTime() - startTime;
+		}
+		Arrays.sort(times);
+		double medianMs = times[numRuns / 2] / 1_000_000.0;
+		System.out.printf("%-32s %8.3f ms%n", name, medianMs);
+		return medianMs;
+	}
+
+	private static int[] summarize(HeatmapNew heatmap)
+	{
+		int[] max = heatmap.getMaxVal();
+		return new int[]{heatmap.getNumTilesVisited(), heatmap.getStepCount(), max[0], max[1], max[2]};
+	}
+
+	// The loops as they were before they were rewritten to scan column by column
+
+	private static int[] legacyGetMaxVal(Heatmap heatmap)
+	{
+		int maxVal = 0, maxX = 0, maxY = 0;
+		for (int y = 0; y < HeatmapNew.HEATMAP_HEIGHT; y++)
+			for (int x = 0; x < HeatmapNew.HEATMAP_WIDTH; x++)
+				if (heatmap.heatmapCoordsGet(x, y) > maxVal)
+				{
+					maxVal = heatmap.heatmapCoordsGet(x, y);
+					maxX = x;
+					maxY = y;
+				}
+		return new int[]{maxVal, maxX, maxY};
+	}
+
+	private static int[] legacyGetMinVal(Heatmap heatmap)
+	{
+		int minVal = Integer.MAX_VALUE, minX = 0, minY = 0;
+		for (int y = 0; y < HeatmapNew.HEATMAP_HEIGHT; y++)
+			for (int x = 0; x < HeatmapNew.HEATMAP_WIDTH; x++)
+				if (heatmap.heatmapCoordsGet(x, y) != 0 && heatmap.heatmapCoordsGet(x, y) < minVal)
+				{
+					minVal = heatmap.heatmapCoordsGet(x, y);
+					minX = x;
+					minY = y;
+				}
+		if (minVal > Integer.MAX_VALUE - 100)
+			return new int[]{0, 0, 0};
+		else
+			return new int[]{minVal, minX, minY};
+	}
+
+	private static HeatmapNew legacyConvertOldHeatmapToNew(Heatmap oldStyle)
+	{
+		HeatmapNew newStyle = new HeatmapNew(-1);
+		for (int x = 0; x < HeatmapNew.HEATMAP_WIDTH; x++)
+			for (int y = 0; y < HeatmapNew.HEATMAP_HEIGHT; y++)
+				if (oldStyle.heatmapCoordsGet(x, y) != 0)
+					newStyle.set(x - HeatmapNew.HEATMAP_OFFSET_X, y - HeatmapNew.HEATMAP_OFFSET_Y, oldStyle.heatmapCoordsGet(x, y));
+		return newStyle;
+	}
+}
@@ -37,12 +37,28 @@ public class HeatmapImage implements RenderedImage
 	private final ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
 
 	// A queue that holds the heatmap coordinates along
-	// with their values, to be sorted by coordinate left-to-right top-to-bottom
-	private static LinkedList<Map.Entry<Point, Integer>> sortedHeatmapTiles;
+	// with their values, to be sorted by coordinate left-to-right top-to-bottom.
+	// One per image, since several heatmaps (e.g. TemporalHeatmap windows) can be rendered at once
+	private LinkedList<Map.Entry<Point, Integer>> sortedHeatmapTiles;
+	private static final double KERNEL_DENSITY_SIGMA = 6.0; // In image pixels (2 tiles)
+	private static final float MIN_VISIBLE_DENSITY = 0.02f;
 	private final int numXTiles = 1;
 	private final int numYTiles;
 	private int heatmapMinVal;
 	private int heatmapMaxVal;
+	private final OverlayMode overlayMode;
+	private KernelDensityRenderer kernelDensityRenderer;
+
+	/**
+	 * How the heatmap tiles are drawn onto the world map
+	 */
+	public enum OverlayMode
+	{
+		/** Each tile is drawn as a solid 3x3 pixel block */
+		TILES,
+		/** The tiles are smoothed with a Gaussian kernel and drawn at pixel resolution */
+		KERNEL_DENSITY
+	}
 
 	/**
 	 * @param worldMapImageReader osrs_world_map.png (8256 x 4992)
@@ -50,7 +66,29 @@ public class HeatmapImage implements RenderedImage
 	 */
 	public HeatmapImage(File heatmapFile, ImageReader worldMapImageReader, int numYTiles)
 	{
-		initializeProcessingVariables(readHeatmapFile(heatmapFile));
+		this(heatmapFile, worldMapImageReader, numYTiles, OverlayMode.TILES);
+	}
+
+	/**
+	 * @param worldMapImageReader osrs_world_map.png (8256 x 4992)
+	 * @param numYTiles Image width must be evenly divisible by numYTiles
+	 * @param overlayMode How the heatmap tiles are to be drawn
+	 */
+	public HeatmapImage(File heatmapFile, ImageReader worldMapImageReader, int numYTiles, OverlayMode overlayMode)
+	{
+		this(readHeatmapFile(heatmapFile), worldMapImageReader, numYTiles, overlayMode);
+	}
+
+	/**
+	 * @param heatmap The heatmap to draw, e.g. a window of a TemporalHeatmap
+	 * @param worldMapImageReader osrs_world_map.png (8256 x 4992)
+	 * @param numYTiles Image width must be evenly divisible by numYTiles
+	 * @param overlayMode How the heatmap tiles are to be drawn
+	 */
+	public HeatmapImage(HeatmapNew heatmap, ImageReader worldMapImageReader, int numYTiles, OverlayMode overlayMode)
+	{
+		this.overlayMode = overlayMode;
+		initializeProcessingVariables(heatmap);
 		this.worldMapImageReader = worldMapImageReader;
 		this.numYTiles = numYTiles;
 		try
@@ -200,14 +238,52 @@ public class HeatmapImage implements RenderedImage
 	@Override
 	public Raster getData(Rectangle rect)
 	{
-		ImageReadParam readParam = worldMapImageReader.getDefaultReadParam();
+		long startTime = System.nanoTime();
+		Raster data = renderRegion(rect, 1, worldMapImageReader, true).getData();
+		if (overlayMode == OverlayMode.KERNEL_DENSITY)
+		{
+			System.out.printf("Finished processing smoothed image chunk %(4d, %4d, %4d, %4d) after %3d ms\n", rect.x, rect.y, rect.width, rect.height, (System.nanoTime() - startTime) / 1_000_000);
+		}
+		return data;
+	}
+
+	/**
+	 * Reads the given region of the world map, subsampled like ImageReadParam.setSourceSubsampling(subsampling, subsampling, 0, 0),
+	 * and draws the heatmap on it. In KERNEL_DENSITY mode this can be called from several threads at once.
+	 * @param rect The x,y,width,height coordinates of the region in the whole image
+	 * @param subsampling Distance in pixels between the sampled rows and columns. Must be 1 in TILES mode
+	 * @param reader The world map reader to read the region with, e.g. one of several over the same MappedImageFile
+	 * so that regions can be decoded in parallel
+	 * @param parallel Whether the heatmap may be smoothed using the common ForkJoinPool. Callers rendering on their own
+	 * thread pool should pass false so that the pool's size actually bounds the CPU used
+	 */
+	public BufferedImage renderRegion(Rectangle rect, int subsampling, ImageReader reader, boolean parallel)
+	{
+		if (subsampling != 1 && overlayMode != OverlayMode.KERNEL_DENSITY)
+		{
+			throw new IllegalArgumentException("Subsampling is only supported in KERNEL_DENSITY mode");
+		}
+		ImageReadParam readParam = reader.getDefaultReadParam();
 		readParam.setSourceRegion(rect);
+		readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
 		try
 		{
 			// Reads only the specified rect from osrs_world_map.png into memory
-			BufferedImage bi = worldMapImageReader.read(0, readParam);
-			processImageRegion(bi, rect);
-			return bi.getData();
+			BufferedImage bi;
+			synchronized (reader)
+			{
+				// ImageReaders aren't thread safe
+				bi = reader.read(0, readParam);
+			}
+			if (overlayMode == OverlayMode.KERNEL_DENSITY)
+			{
+				processImageRegionSmoothed(bi, rect, subsampling, parallel);
+			}
+			else
+			{
+				processImageRegion(bi, rect);
+			}
+			return bi;
 		}
 		catch (IOException e)
 		{
@@ -288,14 +364,66 @@ public class HeatmapImage implements RenderedImage
 		System.out.printf("Finished processing image chunk %(4d, %4d, %4d, %4d) after %3d ms (%4d) tiles\n", region.x, region.y, region.width, region.height, (System.nanoTime() - startTime) / 1_000_000, numTilesProcessed);
 	}
 
-	private double calculateHue(int tileValue, int heatmapSensitivity, int minVal, int maxVal)
+	/**
+	 * Draws the kernel density smoothed heatmap onto a (possibly subsampled) image region. Unlike processImageRegion(), regions can be processed in any order.
+	 * Make sure that initializeProcessingParameters() has been run before running this
+	 * @param imageRegion The image region to be drawn on
+	 * @param region The x,y,width,height coordinates of where the imageRegion came from in the whole image
+	 * @param subsampling Distance in pixels between the rows and columns of the imageRegion in the whole image
+	 * @param parallel Whether to smooth the strips of the region in parallel on the common ForkJoinPool
+	 */
+	public void processImageRegionSmoothed(BufferedImage imageRegion, Rectangle region, int subsampling, boolean parallel)
+	{
+		int width = Math.min((region.width + subsampling - 1) / subsampling, imageRegion.getWidth());
+		int height = Math.min((region.height + subsampling - 1) / subsampling, imageRegion.getHeight());
+		Rectangle sampledRegion = new Rectangle(region.x, region.y, Math.min(region.width, width * subsampling), Math.min(region.height, height * subsampling));
+		float[] density = kernelDensityRenderer.computeDensity(sampledRegion, subsampling, parallel);
+		// Rescale so that a lone tile peaks at its own value, which keeps the colours comparable with TILES mode
+		float peakResponse = kernelDensityRenderer.getPeakResponse();
+		float HEATMAP_TRANSPARENCY = 0.65f;
+		int heatmapSensitivity = 4;
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				float value = density[y * width + x] / peakResponse;
+				if (value < MIN_VISIBLE_DENSITY)
+				{
+					continue;
+				}
+				// Values below 1 only exist at the fringes of the smoothed tiles, so they're faded into the map rather than getting their own hue.
+				// Clusters of tiles can add up to more than the max tile value, so they're capped at the hottest hue
+				double currHue = calculateHue(Math.min(Math.max(value, 1), heatmapMaxVal), heatmapSensitivity, heatmapMinVal, heatmapMaxVal);
+				float strength = Math.min(value, 1);
+
+				int srcRGB = imageRegion.getRGB(x, y);
+				int r = (srcRGB >> 16) & 0xFF;
+				int g = (srcRGB >> 8) & 0xFF;
+				int b = (srcRGB) & 0xFF;
+				float brightness = Color.RGBtoHSB(r, g, b, null)[2] * (1 - HEATMAP_TRANSPARENCY) + HEATMAP_TRANSPARENCY;
+				int heatRGB = Color.HSBtoRGB((float) currHue, 1, brightness);
+				int newR = Math.round(r + (((heatRGB >> 16) & 0xFF) - r) * strength);
+				int newG = Math.round(g + (((heatRGB >> 8) & 0xFF) - g) * strength);
+				int newB = Math.round(b + (((heatRGB) & 0xFF) - b) * strength);
+				imageRegion.setRGB(x, y, (newR << 16) | (newG << 8) | newB);
+			}
+		}
+	}
+
+	private double calculateHue(double tileValue, int heatmapSensitivity, int minVal, int maxVal)
 	{
 		double nthRoot = 1 + (heatmapSensitivity - 1.0) / 2;
 		int logBase = 4;
 		double minHue = 1 / 3.0;
 		double maxHue = 0.0;
-		double currHue = (float) ((Math.log(tileValue) / Math.log(logBase)) / (Math.log(maxVal + 1 - minVal) / Math.log(logBase)));
-		currHue = Math.pow(currHue, 1.0 / nthRoot);
+		double range = Math.log(maxVal + 1 - minVal) / Math.log(logBase);
+		if (range <= 0)
+		{
+			// Every tile has the same value, so there's nothing to scale by. Zero range would give a NaN hue, which comes out red
+			return minHue;
+		}
+		double currHue = (float) ((Math.log(tileValue) / Math.log(logBase)) / range);
+		currHue = Math.pow(Math.min(Math.max(currHue, 0), 1), 1.0 / nthRoot); // Clamped so that out-of-range values can't wrap past red into magenta
 		currHue = (float) (minHue + (currHue * (maxHue - minHue))); // Assign a hue based on normalized step value (values [0, 1] are mapped linearly to hues of [0, 0.333] aka green then yellow, then red)
 		return currHue;
 	}
@@ -321,6 +449,12 @@ public class HeatmapImage implements RenderedImage
 		// Create sorted heatmap tiles array (sorted left-to-right top-to-bottom)
 		heatmapMaxVal = heatmap.getMaxVal()[0];
 		heatmapMinVal = heatmap.getMinVal()[0];
+		if (overlayMode == OverlayMode.KERNEL_DENSITY)
+		{
+			// Strips of 64 rows keep the halo overhead reasonable while giving the threads enough work each
+			kernelDensityRenderer = new KernelDensityRenderer(heatmap, KERNEL_DENSITY_SIGMA, 64);
+			return;
+		}
 		sortedHeatmapTiles = new LinkedList<>(heatmap.getEntrySet());
 		sortedHeatmapTiles.sort((tile1, tile2) -> {
 			Point coords1 = tile1.getKey();
@@ -354,7 +488,7 @@ public class HeatmapImage implements RenderedImage
 	/**
 	 * Loads heatmap from local storage. Throws an exception if the file isn't found or couldn't be read
  	 */
-	private static HeatmapNew readHeatmapFile(File heatmapFile)
+	static HeatmapNew readHeatmapFile(File heatmapFile)
 	{
 		System.out.println("Loading heatmap file '" + heatmapFile.getName() + "'");
 		// Try reading the file as the old style (serialized Heatmap, rather than a zipped .CSV file)
@@ -415,7 +549,6 @@ public class HeatmapImage implements RenderedImage
 			}
 			heatmapNew.maxVal = new int[]{maxVal, maxValX, maxValY};
 			heatmapNew.minVal = new int[]{minVal, minValX, minValY};
-			heatmapNew.stepCount = stepCount;
 
 			// Read the tile values
 			final int[] errorCount = {0}; // Number of parsing errors occurred during read
@@ -434,6 +567,8 @@ public class HeatmapImage implements RenderedImage
 			{
 				System.err.println(errorCount[0] + " errors occurred during heatmap file read.");
 			}
+			// Assigned after the tiles are read, since set() adds them to the step count
+			heatmapNew.stepCount = stepCount;
 			return heatmapNew;
 		}
 		catch (FileNotFoundException e)
@@ -0,0 +1,405 @@
+import java.awt.Point;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Persists a heatmap as a snapshot (the usual zipped .CSV heatmap file) plus an append-only journal of the tiles
+ * that have changed since the snapshot was written, so that saving doesn't mean rewriting the whole heatmap file.
+ * The journal is periodically merged into the snapshot by a background thread.
+ * <p>
+ * The journal is split into numbered segment files next to the snapshot ({snapshot}.journal.{n}). Each segment is
+ * a magic number followed by records of the form {int tileCount, tileCount * (short x, short y, int value), int CRC32}.
+ * Records hold new absolute tile values rather than increments, so replaying a record more than once is harmless.
+ */
+public class HeatmapJournal implements Closeable
+{
+	private static final int SEGMENT_MAGIC = 0x484D4A31; // "HMJ1"
+	private static final int TILE_RECORD_SIZE = 8; // short x, short y, int value
+	private static final String SEGMENT_INFIX = ".journal.";
+
+	/**
+	 * When the journal forces its writes to the storage device
+	 */
+	public enum FsyncPolicy
+	{
+		/** Leave it to the operating system */
+		NEVER,
+		/** After every batch of tiles is appended */
+		EVERY_BATCH
+	}
+
+	private final File snapshotFile;
+	private final HeatmapNew heatmap;
+	private final int batchSize;
+	private final FsyncPolicy fsyncPolicy;
+	private final long compactionThresholdBytes;
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "heatmap-journal-compactor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Changed tiles which haven't been appended to the journal yet. Repeated changes to the same tile are coalesced
+	private final HashMap<Point, Integer> pendingTiles = new HashMap<>();
+	private int segmentNumber;
+	private FileChannel segmentChannel;
+	private Future<?> lastCompaction;
+
+	private HeatmapJournal(File snapshotFile, HeatmapNew heatmap, int segmentNumber, int batchSize, FsyncPolicy fsyncPolicy, long compactionThresholdBytes) throws IOException
+	{
+		this.snapshotFile = snapshotFile;
+		this.heatmap = heatmap;
+		this.batchSize = batchSize;
+		this.fsyncPolicy = fsyncPolicy;
+		this.compactionThresholdBytes = compactionThresholdBytes;
+		openSegment(segmentNumber);
+	}
+
+	/**
+	 * Loads the heatmap from the snapshot file and its journal, and attaches a journal to it so that further changes are persisted.
+	 * If the last journal record was torn by a crash, it is discarded.
+	 * @param snapshotFile The heatmap file. It doesn't need to exist yet
+	 * @param batchSize Number of changed tiles to buffer before appending them to the journal
+	 * @param fsyncPolicy When to force journal writes to the storage device
+	 * @param compactionThresholdBytes Journal size after which it is merged into the snapshot
+	 */
+	public static HeatmapJournal open(File snapshotFile, int batchSize, FsyncPolicy fsyncPolicy, long compactionThresholdBytes) throws IOException
+	{
+		HeatmapNew heatmap = (snapshotFile.exists() ? HeatmapImage.readHeatmapFile(snapshotFile) : new HeatmapNew());
+		List<Integer> segmentNumbers = findSegmentNumbers(snapshotFile);
+		for (int i = 0; i < segmentNumbers.size(); i++)
+		{
+			boolean isLastSegment = (i == segmentNumbers.size() - 1);
+			replaySegment(segmentFile(snapshotFile, segmentNumbers.get(i)), heatmap, isLastSegment);
+		}
+		int segmentNumber = (segmentNumbers.isEmpty() ? 0 : segmentNumbers.get(segmentNumbers.size() - 1));
+		HeatmapJournal journal = new HeatmapJournal(snapshotFile, heatmap, segmentNumber, batchSize, fsyncPolicy, compactionThresholdBytes);
+		heatmap.journal = journal;
+		return journal;
+	}
+
+	/**
+	 * Loads the heatmap from the snapshot file and its journal without attaching a journal to it
+	 */
+	public static HeatmapNew load(File snapshotFile) throws IOException
+	{
+		HeatmapNew heatmap = (snapshotFile.exists() ? HeatmapImage.readHeatmapFile(snapshotFile) : new HeatmapNew());
+		for (int segmentNumber : findSegmentNumbers(snapshotFile))
+		{
+			replaySegment(segmentFile(snapshotFile, segmentNumber), heatmap, false);
+		}
+		return heatmap;
+	}
+
+	public HeatmapNew getHeatmap()
+	{
+		return heatmap;
+	}
+
+	/**
+	 * Called by the heatmap whenever a tile's value changes, after the change has been applied.
+	 * If this fills a batch and writing it fails, the IOException is wrapped in a RuntimeException, which is thrown out of
+	 * HeatmapNew.increment()/set() even though the heatmap has already been changed. The batch stays pending and is retried on the next flush
+	 */
+	synchronized void tileChanged(int x, int y, int newValue)
+	{
+		pendingTiles.put(new Point(x, y), newValue);
+		if (pendingTiles.size() >= batchSize)
+		{
+			try
+			{
+				flush();
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Appends all pending tile changes to the journal, and starts a compaction if the journal has grown big enough
+	 */
+	public synchronized void flush() throws IOException
+	{
+		if (pendingTiles.isEmpty())
+		{
+			return;
+		}
+		ByteBuffer record = ByteBuffer.allocate(4 + pendingTiles.size() * TILE_RECORD_SIZE + 4);
+		record.putInt(pendingTiles.size());
+		for (Map.Entry<Point, Integer> tile : pendingTiles.entrySet())
+		{
+			record.putShort((short) tile.getKey().x);
+			record.putShort((short) tile.getKey().y);
+			record.putInt(tile.getValue());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		record.flip();
+		long recordStart = segmentChannel.position();
+		try
+		{
+			while (record.hasRemaining())
+			{
+				segmentChannel.write(record);
+			}
+			if (fsyncPolicy == FsyncPolicy.EVERY_BATCH)
+			{
+				segmentChannel.force(false);
+			}
+		}
+		catch (IOException e)
+		{
+			// Cut off whatever part of the record made it to the segment (e.g. when the disk is full). Otherwise the next
+			// record would be written after it, and replaying would treat it as a torn record and drop everything after it
+			try
+			{
+				segmentChannel.truncate(recordStart);
+				segmentChannel.position(recordStart);
+			}
+			catch (IOException truncateException)
+			{
+				e.addSuppressed(truncateException);
+			}
+			throw e;
+		}
+		pendingTiles.clear();
+
+		if (segmentChannel.size() >= compactionThresholdBytes && (lastCompaction == null || lastCompaction.isDone()))
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * Starts a new journal segment and merges the heatmap into the snapshot file in the background.
+	 * The journal segments that the new snapshot makes redundant are deleted once it has been written.
+	 * @return The background compaction task
+	 */
+	public synchronized Future<?> compact() throws IOException
+	{
+		flush();
+		final int lastMergedSegment = segmentNumber;
+		openSegment(segmentNumber + 1);
+		// Copy the heatmap so that it can keep being changed while the snapshot is written
+		final HeatmapNew heatmapCopy = copyOf(heatmap);
+		lastCompaction = compactor.submit(() -> {
+			long startTime = System.nanoTime();
+			try
+			{
+				writeSnapshot(heatmapCopy, snapshotFile);
+				for (int n : findSegmentNumbers(snapshotFile))
+				{
+					if (n <= lastMergedSegment)
+					{
+						Files.deleteIfExists(segmentFile(snapshotFile, n).toPath());
+					}
+				}
+				System.out.println("Finished compacting heatmap journal in " + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+			}
+			catch (IOException e)
+			{
+				// The journal segments are only deleted after the snapshot was written, so nothing is lost
+				System.err.println("Failed to compact heatmap journal into " + snapshotFile.getName() + ": " + e.getMessage());
+			}
+		});
+		return lastCompaction;
+	}
+
+	/**
+	 * Flushes pending changes, waits for any compaction to finish and closes the journal. The heatmap is detached from it.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		flush();
+		segmentChannel.force(false);
+		segmentChannel.close();
+		compactor.shutdown();
+		try
+		{
+			compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		heatmap.journal = null;
+	}
+
+	private void openSegment(int newSegmentNumber) throws IOException
+	{
+		if (segmentChannel != null)
+		{
+			segmentChannel.force(false);
+			segmentChannel.close();
+		}
+		segmentNumber = newSegmentNumber;
+		segmentChannel = FileChannel.open(segmentFile(snapshotFile, segmentNumber).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if (segmentChannel.size() < 4)
+		{
+			// New segment, or the header itself was torn
+			segmentChannel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(4).putInt(SEGMENT_MAGIC);
+			header.flip();
+			segmentChannel.write(header, 0);
+		}
+		segmentChannel.position(segmentChannel.size());
+	}
+
+	/**
+	 * Applies the records of the journal segment to the heatmap, stopping at the first incomplete or corrupt record.
+	 * @param truncateTornRecord Whether to cut the incomplete or corrupt record off the end of the file, so that it can be appended to
+	 */
+	private static void replaySegment(File segment, HeatmapNew heatmap, boolean truncateTornRecord) throws IOException
+	{
+		ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+		if (bytes.remaining() < 4)
+		{
+			return;
+		}
+		if (bytes.getInt() != SEGMENT_MAGIC)
+		{
+			throw new IOException("The file " + segment.getName() + " is not a heatmap journal");
+		}
+
+		int numRecords = 0;
+		int validLength = bytes.position();
+		CRC32 crc = new CRC32();
+		while (bytes.remaining() >= 4)
+		{
+			int recordStart = bytes.position();
+			int tileCount = bytes.getInt();
+			if (tileCount < 0 || (long) tileCount * TILE_RECORD_SIZE + 4 > bytes.remaining())
+			{
+				break;
+			}
+			crc.reset();
+			crc.update(bytes.array(), recordStart, 4 + tileCount * TILE_RECORD_SIZE);
+			if ((int) crc.getValue() != bytes.getInt(recordStart + 4 + tileCount * TILE_RECORD_SIZE))
+			{
+				break;
+			}
+			for (int i = 0; i < tileCount; i++)
+			{
+				short x = bytes.getShort();
+				short y = bytes.getShort();
+				heatmap.set(x, y, bytes.getInt());
+			}
+			bytes.getInt(); // Skip past the CRC
+			validLength = bytes.position();
+			numRecords++;
+		}
+
+		if (validLength < bytes.limit())
+		{
+			System.err.println("Discarding " + (bytes.limit() - validLength) + " bytes of incomplete or corrupt heatmap journal from " + segment.getName());
+			if (truncateTornRecord)
+			{
+				try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE))
+				{
+					channel.truncate(validLength);
+					channel.force(false);
+				}
+			}
+		}
+		System.out.println("Replayed " + numRecords + " heatmap journal records from " + segment.getName());
+	}
+
+	/**
+	 * Writes the heatmap in the zipped .CSV format read by HeatmapImage.readHeatmapFile(), replacing the file atomically
+	 */
+	static void writeSnapshot(HeatmapNew heatmap, File heatmapFile) throws IOException
+	{
+		File tempFile = new File(heatmapFile.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tempFile))
+		{
+			ZipOutputStream zos = new ZipOutputStream(fos);
+			zos.putNextEntry(new ZipEntry("heatmap.csv"));
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8));
+			int[] maxVal = heatmap.getMaxVal();
+			int[] minVal = heatmap.getMinVal();
+			writer.write("userID,heatmapVersion,stepCount,maxVal,maxValX,maxValY,minVal,minValX,minValY\n");
+			writer.write(heatmap.playerID + "," + HeatmapNew.heatmapVersion + "," + heatmap.getStepCount() + ","
+				+ maxVal[0] + "," + maxVal[1] + "," + maxVal[2] + "," + minVal[0] + "," + minVal[1] + "," + minVal[2] + "\n");
+			for (Map.Entry<Point, Integer> tile : heatmap.getEntrySet())
+			{
+				writer.write(tile.getKey().x + "," + tile.getKey().y + "," + tile.getValue() + "\n");
+			}
+			writer.flush();
+			zos.closeEntry();
+			zos.finish();
+			fos.getFD().sync();
+		}
+		Files.move(tempFile.toPath(), heatmapFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static HeatmapNew copyOf(HeatmapNew heatmap)
+	{
+		HeatmapNew copy = new HeatmapNew(heatmap.playerID);
+		copy.heatmapHashMap.putAll(heatmap.heatmapHashMap);
+		copy.stepCount = heatmap.stepCount;
+		copy.maxVal = heatmap.maxVal.clone();
+		copy.minVal = heatmap.minVal.clone();
+		return copy;
+	}
+
+	private static File segmentFile(File snapshotFile, int segmentNumber)
+	{
+		return new File(snapshotFile.getPath() + SEGMENT_INFIX + segmentNumber);
+	}
+
+	/**
+	 * @return The numbers of the snapshot's existing journal segments, in ascending order
+	 */
+	private static List<Integer> findSegmentNumbers(File snapshotFile)
+	{
+		List<Integer> result = new ArrayList<>();
+		File directory = snapshotFile.getAbsoluteFile().getParentFile();
+		String prefix = snapshotFile.getName() + SEGMENT_INFIX;
+		String[] names = directory.list();
+		if (names == null)
+		{
+			return result;
+		}
+		for (String name : names)
+		{
+			if (name.startsWith(prefix))
+			{
+				try
+				{
+					result.add(Integer.parseInt(name.substring(prefix.length())));
+				}
+				catch (NumberFormatException e)
+				{
+					// Not one of ours
+				}
+			}
+		}
+		result.sort(Integer::compare);
+		return result;
+	}
+}
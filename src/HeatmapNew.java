@@ -14,6 +14,7 @@ public class HeatmapNew {
 		HEATMAP_OFFSET_X = -1152,   //never change these
 		HEATMAP_OFFSET_Y = -2496;   //never change these (for backwards compatibility)
 	public long playerID = -1;
+	protected HeatmapJournal journal; // If not null, tile changes are appended to it
 
 	public HeatmapNew() {
 		this.stepCount = 0;
@@ -26,15 +27,23 @@ public class HeatmapNew {
 		this.playerID = playerID;
 	}
 
+	/**
+	 * @param expectedNumTiles Number of tiles the heatmap is expected to hold, so that the hash map doesn't have to keep growing
+	 */
+	protected HeatmapNew(long playerID, int expectedNumTiles) {
+		this.stepCount = 0;
+		this.heatmapHashMap = new HashMap<>((int) (expectedNumTiles / 0.75f) + 1);
+		this.playerID = playerID;
+	}
+
 	// The following horse shit is for backwards compatibility with the old, retarded method of storing heatmap data
 	public static HeatmapNew convertOldHeatmapToNew(Heatmap oldStyle, long userId) {
-		HeatmapNew newStyle = new HeatmapNew(userId);
-		for (int x = 0; x < HEATMAP_WIDTH; x++) {
-			for (int y = 0; y < HEATMAP_HEIGHT; y++) {
-				if (oldStyle.heatmapCoordsGet(x, y) != 0) {
-					newStyle.set(x - HEATMAP_OFFSET_X, y - HEATMAP_OFFSET_Y, oldStyle.heatmapCoordsGet(x, y));
-				}
-			}
+		// Extract the non-zero tiles in one scan of the dense grid first, so that the hash map can be sized to fit them
+		int[][] tiles = oldStyle.getNonZeroTiles();
+		int[] xs = tiles[0], ys = tiles[1], values = tiles[2];
+		HeatmapNew newStyle = new HeatmapNew(userId, values.length);
+		for (int i = 0; i < values.length; i++) {
+			newStyle.set(xs[i] - HEATMAP_OFFSET_X, ys[i] - HEATMAP_OFFSET_Y, values[i]);
 		}
 		return newStyle;
 	}
@@ -49,7 +58,8 @@ public class HeatmapNew {
 	}
 
 	/**
-	 * Increments the heatmap's value at the given location by the amount specified
+	 * Increments the heatmap's value at the given location by the amount specified.
+	 * If a journal is attached and writing to it fails, a RuntimeException is thrown after the value has already been changed
 	 *
 	 * @param x      Original RuneScape x-coord
 	 * @param y      Original RuneScape y-coord
@@ -63,6 +73,10 @@ public class HeatmapNew {
 		if (newValue >= maxVal[0]) {
 			maxVal = new int[]{newValue, x, y};
 		}
+		//Only once all of the above is done, since the journal might take a snapshot of the heatmap
+		if (journal != null) {
+			journal.tileChanged(x, y, newValue);
+		}
 	}
 
 	/**
@@ -77,6 +91,7 @@ public class HeatmapNew {
 
 	/**
 	 * Sets the heatmap's value at the given location to the given value.
+	 * If a journal is attached and writing to it fails, a RuntimeException is thrown after the value has already been changed
 	 *
 	 * @param newValue New value
 	 * @param x        Original RuneScape x-coord
@@ -116,6 +131,9 @@ public class HeatmapNew {
 			}
 			// It's super unlikely that a removed tile will have been the least
 			// stepped on, so I'm just not even gon bother writing error checking for it
+			if (journal != null) {
+				journal.tileChanged(x, y, newValue);
+			}
 			return;
 		}
 
@@ -126,6 +144,10 @@ public class HeatmapNew {
 		if (newValue <= minVal[0]) {
 			minVal = new int[]{newValue, x, y};
 		}
+		//Only once all of the above is done, since the journal might take a snapshot of the heatmap
+		if (journal != null) {
+			journal.tileChanged(x, y, newValue);
+		}
 	}
 
 	/**
@@ -137,6 +159,9 @@ public class HeatmapNew {
 	 */
 	protected void setFast(int x, int y, int newValue) {
 		heatmapHashMap.put(new Point(x, y), newValue);
+		if (journal != null) {
+			journal.tileChanged(x, y, newValue);
+		}
 	}
 
 	/**
@@ -0,0 +1,426 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+
+/**
+ * Serves heatmap images as PNG tiles over HTTP, rendering them on demand.
+ * <p>
+ * Tiles are requested as GET /tiles/{heatmapId}/{zoom}/{x}/{y}.png. At zoom MAX_ZOOM a tile covers TILE_SIZE x TILE_SIZE
+ * pixels of osrs_world_map.png, and each zoom level below that covers twice as many pixels per side.
+ * GET /stats returns the cache hit rate and render latencies.
+ * The server only listens on the loopback interface, so it's only reachable from the same machine (or through a reverse proxy).
+ * <p>
+ * Rendering is done by a fixed pool of workers. Identical requests that arrive while a tile is being rendered wait for
+ * that render rather than starting their own, and encoded tiles are kept in a size-bounded LRU cache until their heatmap changes.
+ */
+public class HeatmapTileServer
+{
+	public static final int TILE_SIZE = 256;
+	public static final int MAX_ZOOM = 2;
+	private static final int NUM_LATENCY_SAMPLES = 1024;
+	private static final int REQUEST_THREADS_PER_WORKER = 4;
+
+	private final ImageReader worldMapImageReader;
+	private final ThreadLocal<ImageReader> workerImageReaders; // Null if all workers share worldMapImageReader
+	private final int imageWidth, imageHeight;
+	private final HttpServer httpServer;
+	private final ExecutorService renderPool;
+	private final ExecutorService requestPool;
+	private final TileCache cache;
+
+	// Heatmap images by ID. A new version is assigned whenever a heatmap changes so that stale tiles are never served
+	private final ConcurrentHashMap<String, VersionedImage> heatmapImages = new ConcurrentHashMap<>();
+	private final AtomicLong nextVersion = new AtomicLong();
+	private final ConcurrentHashMap<TileKey, CompletableFuture<byte[]>> inFlightRenders = new ConcurrentHashMap<>();
+
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final long[] renderLatencies = new long[NUM_LATENCY_SAMPLES]; // Ring buffer of the most recent render times, in nanoseconds
+	private long numRenders;
+
+	/**
+	 * @param worldMapImageReader osrs_world_map.png (8256 x 4992)
+	 * @param port Port to listen on, or 0 for any free port
+	 * @param numWorkers Max number of tiles rendered at once
+	 * @param cacheSizeBytes Max total size of the cached PNG tiles
+	 */
+	public HeatmapTileServer(ImageReader worldMapImageReader, int port, int numWorkers, long cacheSizeBytes) throws IOException
+	{
+		this(worldMapImageReader, null, port, numWorkers, cacheSizeBytes);
+	}
+
+	/**
+	 * Each render worker gets its own reader over the mapped file, so tiles are decoded in parallel rather than one at a time
+	 * @param worldMapFile osrs_world_map.png (8256 x 4992)
+	 * @param port Port to listen on, or 0 for any free port
+	 * @param numWorkers Max number of tiles rendered at once
+	 * @param cacheSizeBytes Max total size of the cached PNG tiles
+	 */
+	public HeatmapTileServer(MappedImageFile worldMapFile, int port, int numWorkers, long cacheSizeBytes) throws IOException
+	{
+		this(worldMapFile.newImageReader("PNG"), worldMapFile, port, numWorkers, cacheSizeBytes);
+	}
+
+	private HeatmapTileServer(ImageReader worldMapImageReader, MappedImageFile worldMapFile, int port, int numWorkers, long cacheSizeBytes) throws IOException
+	{
+		this.worldMapImageReader = worldMapImageReader;
+		this.workerImageReaders = (worldMapFile == null ? null : ThreadLocal.withInitial(() -> {
+			try
+			{
+				return worldMapFile.newImageReader("PNG");
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}));
+		this.imageWidth = worldMapImageReader.getWidth(0);
+		this.imageHeight = worldMapImageReader.getHeight(0);
+		this.renderPool = Executors.newFixedThreadPool(numWorkers);
+		this.cache = new TileCache(cacheSizeBytes);
+		this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/tiles/", this::handleTileRequest);
+		httpServer.createContext("/stats", this::handleStatsRequest);
+		// Request threads mostly just wait on the render pool or copy cached bytes, so there are a few per worker.
+		// Requests beyond that wait in the pool's queue
+		this.requestPool = Executors.newFixedThreadPool(REQUEST_THREADS_PER_WORKER * numWorkers);
+		httpServer.setExecutor(requestPool);
+	}
+
+	public void start()
+	{
+		httpServer.start();
+		System.out.println("Heatmap tile server listening on localhost port " + getPort());
+	}
+
+	public void stop()
+	{
+		httpServer.stop(0);
+		requestPool.shutdownNow();
+		renderPool.shutdownNow();
+	}
+
+	public int getPort()
+	{
+		return httpServer.getAddress().getPort();
+	}
+
+	/**
+	 * Adds a heatmap to be served, or replaces it. Call this again whenever the heatmap changes, so that its cached tiles are dropped.
+	 */
+	public void putHeatmap(String heatmapId, HeatmapNew heatmap)
+	{
+		HeatmapImage image;
+		synchronized (worldMapImageReader)
+		{
+			// The constructor reads the image dimensions, which mustn't happen during a render
+			image = new HeatmapImage(heatmap, worldMapImageReader, 1, HeatmapImage.OverlayMode.KERNEL_DENSITY);
+		}
+		heatmapImages.put(heatmapId, new VersionedImage(image, nextVersion.getAndIncrement()));
+		cache.removeHeatmap(heatmapId);
+	}
+
+	public void removeHeatmap(String heatmapId)
+	{
+		heatmapImages.remove(heatmapId);
+		cache.removeHeatmap(heatmapId);
+	}
+
+	/**
+	 * @return The PNG bytes of the tile, or null if there is no such heatmap or the tile is out of bounds
+	 */
+	public byte[] getTile(String heatmapId, int zoom, int x, int y) throws IOException
+	{
+		VersionedImage versionedImage = heatmapImages.get(heatmapId);
+		if (versionedImage == null || zoom < 0 || zoom > MAX_ZOOM)
+		{
+			return null;
+		}
+		int tileSpan = TILE_SIZE << (MAX_ZOOM - zoom); // In image pixels
+		if (x < 0 || y < 0 || (long) x * tileSpan >= imageWidth || (long) y * tileSpan >= imageHeight)
+		{
+			return null;
+		}
+
+		TileKey key = new TileKey(heatmapId, versionedImage.version, zoom, x, y);
+		byte[] png = cache.get(key);
+		if (png != null)
+		{
+			cacheHits.incrementAndGet();
+			return png;
+		}
+		cacheMisses.incrementAndGet();
+
+		// Join the render of this tile if there already is one
+		CompletableFuture<byte[]> render = inFlightRenders.computeIfAbsent(key, k -> CompletableFuture.supplyAsync(() -> renderTile(versionedImage.image, zoom, x, y), renderPool));
+		render.whenComplete((bytes, e) -> {
+			if (bytes != null)
+			{
+				VersionedImage current = heatmapImages.get(heatmapId);
+				if (current != null && current.version == key.version)
+				{
+					cache.put(key, bytes);
+				}
+			}
+			inFlightRenders.remove(key, render);
+		});
+		try
+		{
+			return render.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private byte[] renderTile(HeatmapImage image, int zoom, int x, int y)
+	{
+		long startTime = System.nanoTime();
+		int subsampling = 1 << (MAX_ZOOM - zoom);
+		int tileSpan = TILE_SIZE * subsampling;
+		Rectangle region = new Rectangle(x * tileSpan, y * tileSpan, Math.min(tileSpan, imageWidth - x * tileSpan), Math.min(tileSpan, imageHeight - y * tileSpan));
+		ImageReader reader = (workerImageReaders == null ? worldMapImageReader : workerImageReaders.get());
+		// Smooth sequentially, so that the render pool is the only thing rendering
+		BufferedImage tile = image.renderRegion(region, subsampling, reader, false);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try
+		{
+			ImageIO.write(tile, "png", baos);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		recordRenderLatency(System.nanoTime() - startTime);
+		return baos.toByteArray();
+	}
+
+	private synchronized void recordRenderLatency(long nanos)
+	{
+		renderLatencies[(int) (numRenders % NUM_LATENCY_SAMPLES)] = nanos;
+		numRenders++;
+	}
+
+	/**
+	 * @return The fraction of tile requests that were served from the cache
+	 */
+	public double getCacheHitRate()
+	{
+		long hits = cacheHits.get();
+		long total = hits + cacheMisses.get();
+		return (total == 0 ? 0 : (double) hits / total);
+	}
+
+	/**
+	 * @param percentile In [0, 100]
+	 * @return The given percentile of the most recent render times in milliseconds, or 0 if nothing has been rendered
+	 */
+	public synchronized double getRenderLatencyPercentile(double percentile)
+	{
+		int numSamples = (int) Math.min(numRenders, NUM_LATENCY_SAMPLES);
+		if (numSamples == 0)
+		{
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(renderLatencies, numSamples);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * numSamples) - 1;
+		return sorted[Math.max(0, Math.min(index, numSamples - 1))] / 1_000_000.0;
+	}
+
+	private void handleTileRequest(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			if (!exchange.getRequestMethod().equals("GET"))
+			{
+				sendResponse(exchange, 405, "text/plain", "Method not allowed".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			// /tiles/{heatmapId}/{zoom}/{x}/{y}.png
+			String[] parts = exchange.getRequestURI().getPath().split("/");
+			if (parts.length != 6 || !parts[5].endsWith(".png"))
+			{
+				sendResponse(exchange, 400, "text/plain", "Expected /tiles/{heatmapId}/{zoom}/{x}/{y}.png".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			byte[] png;
+			try
+			{
+				int zoom = Integer.parseInt(parts[3]);
+				int x = Integer.parseInt(parts[4]);
+				int y = Integer.parseInt(parts[5].substring(0, parts[5].length() - ".png".length()));
+				png = getTile(parts[2], zoom, x, y);
+			}
+			catch (NumberFormatException e)
+			{
+				sendResponse(exchange, 400, "text/plain", "Zoom and tile coordinates must be integers".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			if (png == null)
+			{
+				sendResponse(exchange, 404, "text/plain", "No such tile".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			sendResponse(exchange, 200, "image/png", png);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to render tile " + exchange.getRequestURI() + ": " + e.getMessage());
+			sendResponse(exchange, 500, "text/plain", "Failed to render tile".getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private void handleStatsRequest(HttpExchange exchange) throws IOException
+	{
+		String stats = String.format("cacheHitRate=%.4f%ncachedTiles=%d%ncachedBytes=%d%nrenderLatencyP50Ms=%.2f%nrenderLatencyP99Ms=%.2f%n",
+			getCacheHitRate(), cache.size(), cache.sizeBytes(), getRenderLatencyPercentile(50), getRenderLatencyPercentile(99));
+		sendResponse(exchange, 200, "text/plain", stats.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void sendResponse(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException
+	{
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody())
+		{
+			os.write(body);
+		}
+	}
+
+	private static class VersionedImage
+	{
+		private final HeatmapImage image;
+		private final long version;
+
+		private VersionedImage(HeatmapImage image, long version)
+		{
+			this.image = image;
+			this.version = version;
+		}
+	}
+
+	private static class TileKey
+	{
+		private final String heatmapId;
+		private final long version;
+		private final int zoom, x, y;
+
+		private TileKey(String heatmapId, long version, int zoom, int x, int y)
+		{
+			this.heatmapId = heatmapId;
+			this.version = version;
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof TileKey))
+			{
+				return false;
+			}
+			TileKey other = (TileKey) o;
+			return heatmapId.equals(other.heatmapId) && version == other.version && zoom == other.zoom && x == other.x && y == other.y;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = heatmapId.hashCode();
+			result = 31 * result + Long.hashCode(version);
+			result = 31 * result + zoom;
+			result = 31 * result + x;
+			result = 31 * result + y;
+			return result;
+		}
+	}
+
+	/**
+	 * LRU cache of encoded tiles, bounded by their total size in bytes
+	 */
+	private static class TileCache
+	{
+		private final long maxSizeBytes;
+		private final LinkedHashMap<TileKey, byte[]> tiles = new LinkedHashMap<>(16, 0.75f, true);
+		private long sizeBytes;
+
+		private TileCache(long maxSizeBytes)
+		{
+			this.maxSizeBytes = maxSizeBytes;
+		}
+
+		private synchronized byte[] get(TileKey key)
+		{
+			return tiles.get(key);
+		}
+
+		private synchronized void put(TileKey key, byte[] png)
+		{
+			if (png.length > maxSizeBytes)
+			{
+				return;
+			}
+			byte[] old = tiles.put(key, png);
+			sizeBytes += png.length - (old == null ? 0 : old.length);
+			// Evict least recently used tiles
+			Iterator<byte[]> it = tiles.values().iterator();
+			while (sizeBytes > maxSizeBytes && it.hasNext())
+			{
+				sizeBytes -= it.next().length;
+				it.remove();
+			}
+		}
+
+		private synchronized void removeHeatmap(String heatmapId)
+		{
+			Iterator<Map.Entry<TileKey, byte[]>> it = tiles.entrySet().iterator();
+			while (it.hasNext())
+			{
+				Map.Entry<TileKey, byte[]> e = it.next();
+				if (e.getKey().heatmapId.equals(heatmapId))
+				{
+					sizeBytes -= e.getValue().length;
+					it.remove();
+				}
+			}
+		}
+
+		private synchronized int size()
+		{
+			return tiles.size();
+		}
+
+		private synchronized long sizeBytes()
+		{
+			return sizeBytes;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Calculates a smoothed (Gaussian kernel density) version of a heatmap at image pixel resolution.
+ * The image is processed in horizontal strips, each of which only needs the tile rows it covers plus a halo
+ * of kernel-radius rows above and below, so memory usage is bounded by the strip height rather than the whole image.
+ */
+public class KernelDensityRenderer
+{
+	private static final int PIXELS_PER_TILE = 3; // Each tile covers 3x3 image pixels
+
+	// The heatmap tiles stored compactly by image row (top-to-bottom), like a sparse matrix.
+	// The tiles of tile row r are at indices [rowStarts[r], rowStarts[r + 1]) of tileColumns and tileValues
+	private final int[] rowStarts;
+	private final int[] tileColumns;
+	private final float[] tileValues;
+
+	private final float[] kernel;
+	private final int kernelRadius;
+	private final int stripHeight;
+
+	/**
+	 * @param heatmap The heatmap to be smoothed
+	 * @param sigma Standard deviation of the Gaussian kernel, in image pixels
+	 * @param stripHeight Number of image rows to convolve at a time (per thread)
+	 */
+	public KernelDensityRenderer(HeatmapNew heatmap, double sigma, int stripHeight)
+	{
+		if (sigma <= 0 || stripHeight <= 0)
+		{
+			throw new IllegalArgumentException("sigma and stripHeight must be positive");
+		}
+		this.stripHeight = stripHeight;
+		this.kernelRadius = (int) Math.ceil(3 * sigma);
+		this.kernel = createGaussianKernel(sigma, kernelRadius);
+
+		// Count the tiles in each row, then fill them in (counting sort by row)
+		rowStarts = new int[HeatmapNew.HEATMAP_HEIGHT + 1];
+		for (Map.Entry<Point, Integer> tile : heatmap.getEntrySet())
+		{
+			int row = tileRow(tile.getKey());
+			if (row >= 0 && tileColumn(tile.getKey()) >= 0 && tile.getValue() > 0)
+			{
+				rowStarts[row + 1]++;
+			}
+		}
+		for (int row = 0; row < HeatmapNew.HEATMAP_HEIGHT; row++)
+		{
+			rowStarts[row + 1] += rowStarts[row];
+		}
+		tileColumns = new int[rowStarts[HeatmapNew.HEATMAP_HEIGHT]];
+		tileValues = new float[tileColumns.length];
+		int[] nextIndex = new int[HeatmapNew.HEATMAP_HEIGHT];
+		System.arraycopy(rowStarts, 0, nextIndex, 0, nextIndex.length);
+		for (Map.Entry<Point, Integer> tile : heatmap.getEntrySet())
+		{
+			int row = tileRow(tile.getKey());
+			int column = tileColumn(tile.getKey());
+			if (row >= 0 && column >= 0 && tile.getValue() > 0)
+			{
+				int i = nextIndex[row]++;
+				tileColumns[i] = column;
+				tileValues[i] = tile.getValue();
+			}
+		}
+	}
+
+	public int getKernelRadius()
+	{
+		return kernelRadius;
+	}
+
+	/**
+	 * @return The density at the center of an isolated tile of value 1, i.e. how much smoothing scales down the peaks of lone tiles
+	 */
+	public float getPeakResponse()
+	{
+		// The center pixel of the 3x3 block is covered by the middle 3 kernel weights in each direction
+		float centerWeights = kernel[kernelRadius - 1] + kernel[kernelRadius] + kernel[kernelRadius + 1];
+		return centerWeights * centerWeights;
+	}
+
+	/**
+	 * Calculates the smoothed heatmap values at every subsampling'th pixel of every subsampling'th row of the given image region,
+	 * like ImageReadParam.setSourceSubsampling(subsampling, subsampling, 0, 0).
+	 * Since the kernel is normalized, the values never exceed the heatmap's max value.
+	 * @param region The x,y,width,height coordinates of the image region
+	 * @param subsampling Distance in pixels between the sampled rows and columns (1 for every pixel)
+	 * @param parallel Whether to process the strips of the region in parallel on the common ForkJoinPool.
+	 * Callers which bound their CPU usage with their own thread pool should pass false
+	 * @return The density values of the sampled pixels, in row-major order (ceil(width / subsampling) values per row)
+	 */
+	public float[] computeDensity(Rectangle region, int subsampling, boolean parallel)
+	{
+		int width = (region.width + subsampling - 1) / subsampling;
+		int height = (region.height + subsampling - 1) / subsampling;
+		float[] density = new float[width * height];
+		int numStrips = (height + stripHeight - 1) / stripHeight;
+		IntStream strips = IntStream.range(0, numStrips);
+		if (parallel)
+		{
+			strips = strips.parallel();
+		}
+		strips.forEach(strip -> {
+			int stripY = strip * stripHeight;
+			convolveStrip(region, subsampling, width, stripY, Math.min(stripHeight, height - stripY), density);
+		});
+		return density;
+	}
+
+	/**
+	 * Convolves the sampled rows [stripY, stripY + height) of the region and writes them into the corresponding rows of density
+	 */
+	private void convolveStrip(Rectangle region, int subsampling, int width, int stripY, int height, float[] density)
+	{
+		final int imageHeight = HeatmapNew.HEATMAP_HEIGHT * PIXELS_PER_TILE;
+
+		// Image rows needed for this strip, including the halo above and below
+		int firstPixelRow = Math.max(0, region.y + stripY * subsampling - kernelRadius);
+		int lastPixelRow = Math.min(imageHeight - 1, region.y + (stripY + height - 1) * subsampling + kernelRadius);
+		if (firstPixelRow > lastPixelRow)
+		{
+			return;
+		}
+		int firstTileRow = firstPixelRow / PIXELS_PER_TILE;
+		int lastTileRow = lastPixelRow / PIXELS_PER_TILE;
+
+		// Horizontal pass. All pixel rows of the same tile row are identical, so it's only done once per tile row
+		float[][] horizontal = new float[lastTileRow - firstTileRow + 1][];
+		for (int tileRow = firstTileRow; tileRow <= lastTileRow; tileRow++)
+		{
+			horizontal[tileRow - firstTileRow] = convolveTileRow(tileRow, region.x, subsampling, width);
+		}
+
+		// Vertical pass
+		for (int y = 0; y < height; y++)
+		{
+			int pixelRow = region.y + (stripY + y) * subsampling;
+			int outOffset = (stripY + y) * width;
+			for (int k = -kernelRadius; k <= kernelRadius; k++)
+			{
+				int srcPixelRow = pixelRow + k;
+				if (srcPixelRow < firstPixelRow || srcPixelRow > lastPixelRow)
+				{
+					continue;
+				}
+				float[] src = horizontal[srcPixelRow / PIXELS_PER_TILE - firstTileRow];
+				if (src == null)
+				{
+					continue;
+				}
+				float weight = kernel[k + kernelRadius];
+				for (int x = 0; x < width; x++)
+				{
+					density[outOffset + x] += weight * src[x];
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The horizontally convolved values of the given tile row at the image columns regionX + i * subsampling for i in [0, width),
+	 * or null if they'd all be zero
+	 */
+	private float[] convolveTileRow(int tileRow, int regionX, int subsampling, int width)
+	{
+		float[] result = null;
+		int lastPixelX = regionX + (width - 1) * subsampling;
+		// Tiles further left or right than this can't affect the region
+		int minPixelX = regionX - kernelRadius - (PIXELS_PER_TILE - 1);
+		int maxPixelX = lastPixelX + kernelRadius;
+		for (int i = rowStarts[tileRow]; i < rowStarts[tileRow + 1]; i++)
+		{
+			int tileX = tileColumns[i] * PIXELS_PER_TILE;
+			if (tileX < minPixelX || tileX > maxPixelX)
+			{
+				continue;
+			}
+			if (result == null)
+			{
+				result = new float[width];
+			}
+			float value = tileValues[i];
+			for (int px = tileX; px < tileX + PIXELS_PER_TILE; px++)
+			{
+				// Sampled columns within the kernel's reach
+				int from = Math.max(0, Math.floorDiv(px - kernelRadius - regionX + subsampling - 1, subsampling));
+				int to = Math.min(width - 1, Math.floorDiv(px + kernelRadius - regionX, subsampling));
+				for (int x = from; x <= to; x++)
+				{
+					result[x] += value * kernel[regionX + x * subsampling - px + kernelRadius];
+				}
+			}
+		}
+		return result;
+	}
+
+	private static float[] createGaussianKernel(double sigma, int radius)
+	{
+		float[] kernel = new float[2 * radius + 1];
+		double sum = 0;
+		for (int i = -radius; i <= radius; i++)
+		{
+			sum += Math.exp(-(i * i) / (2 * sigma * sigma));
+		}
+		for (int i = -radius; i <= radius; i++)
+		{
+			kernel[i + radius] = (float) (Math.exp(-(i * i) / (2 * sigma * sigma)) / sum);
+		}
+		return kernel;
+	}
+
+	/**
+	 * @return The tile row (top-to-bottom, same orientation as the image) of the game coordinate, or -1 if out of bounds
+	 */
+	private static int tileRow(Point gameCoords)
+	{
+		int row = HeatmapNew.HEATMAP_HEIGHT - (gameCoords.y + HeatmapNew.HEATMAP_OFFSET_Y) - 1;
+		return (row < 0 || row >= HeatmapNew.HEATMAP_HEIGHT ? -1 : row);
+	}
+
+	/**
+	 * @return The tile column of the game coordinate, or -1 if out of bounds
+	 */
+	private static int tileColumn(Point gameCoords)
+	{
+		int column = gameCoords.x + HeatmapNew.HEATMAP_OFFSET_X;
+		return (column < 0 || column >= HeatmapNew.HEATMAP_WIDTH ? -1 : column);
+	}
+}
@@ -0,0 +1,110 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * An image file that is memory-mapped once and can then be read by any number of ImageReaders, each with its own seekable stream.
+ * Unlike ImageIO.createImageInputStream() on a non-seekable InputStream, this doesn't copy the file into a cache before decoding it.
+ * Files too big to be mapped in one piece are read through a FileImageInputStream instead.
+ * The mapping is released once this and every stream using it have been garbage collected.
+ */
+public class MappedImageFile
+{
+	private final File file;
+	private final ByteBuffer mappedBuffer; // Null if the file couldn't be mapped
+
+	public MappedImageFile(File file) throws IOException
+	{
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			// The mapping stays valid after the channel is closed
+			mappedBuffer = (channel.size() <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) : null);
+		}
+	}
+
+	/**
+	 * @return A new stream over the file, positioned at the start. Streams can be used and seeked independently of each other
+	 */
+	public ImageInputStream newImageInputStream() throws IOException
+	{
+		if (mappedBuffer == null)
+		{
+			return new FileImageInputStream(file);
+		}
+		return new MappedImageInputStream(mappedBuffer.duplicate());
+	}
+
+	/**
+	 * @param formatName E.g. "PNG"
+	 * @return A new ImageReader with its own stream over the file
+	 */
+	public ImageReader newImageReader(String formatName) throws IOException
+	{
+		ImageReader reader = ImageIO.getImageReadersByFormatName(formatName).next();
+		reader.setInput(newImageInputStream(), false);
+		return reader;
+	}
+
+	/**
+	 * Seekable ImageInputStream over a byte buffer. The buffer must not be shared with other streams
+	 */
+	private static class MappedImageInputStream extends ImageInputStreamImpl
+	{
+		private final ByteBuffer buffer;
+
+		private MappedImageInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			checkClosed();
+			bitOffset = 0;
+			if (streamPos >= buffer.limit())
+			{
+				return -1;
+			}
+			return buffer.get((int) streamPos++) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			checkClosed();
+			if (off < 0 || len < 0 || off + len > b.length)
+			{
+				throw new IndexOutOfBoundsException();
+			}
+			bitOffset = 0;
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (streamPos >= buffer.limit())
+			{
+				return -1;
+			}
+			int numBytes = (int) Math.min(len, buffer.limit() - streamPos);
+			buffer.position((int) streamPos);
+			buffer.get(b, off, numBytes);
+			streamPos += numBytes;
+			return numBytes;
+		}
+
+		@Override
+		public long length()
+		{
+			return buffer.limit();
+		}
+	}
+}
@@ -4,43 +4,38 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
-import javax.imageio.stream.ImageInputStream;
 
 public class PiecewiseImageReaderWriter
 {
 	public static void main(String[] args) throws IOException, ClassNotFoundException
 	{
+		if (args.length == 3 && args[0].equals("--serve"))
+		{
+			serve(args[1], Integer.parseInt(args[2]));
+			return;
+		}
 		if (args.length != 2)
 		{
-			System.err.println("Expected two arguments (inputImage and outputImage)");
+			System.err.println("Expected two arguments (inputImage and outputImage), or three (--serve inputImage port)");
 			System.exit(-1);
 		}
 		String inputImageName = args[0];
 		String outputImageName = args[1];
 
-		// I made it so that the input image is a program resource because
-		// the point of this program is to test something I want to do to a
-		// resource image in a different program
 		System.out.println("Input image: " + inputImageName);
 		System.out.println("Output image: " + outputImageName);
-		InputStream inputStream = PiecewiseImageReaderWriter.class.getClassLoader().getResourceAsStream(inputImageName);
 		File outputImageFile = new File(outputImageName);
-		if (inputStream == null)
-		{
-			System.err.println("Error: resource \"" + inputImageName + "\" doesn't exist");
-			System.exit(-1);
-		}
 
 		// Prepare the image reader
-		ImageInputStream worldMapImageInputStream = ImageIO.createImageInputStream(inputStream);
-		ImageReader reader = ImageIO.getImageReadersByFormatName("PNG").next();
-		reader.setInput(worldMapImageInputStream, true);
+		ImageReader reader = openImageReader(inputImageName, true);
 
 		// Prepare the image writer
 		final int tileWidth = 8256;
@@ -66,4 +61,79 @@ public class PiecewiseImageReaderWriter
 		reader.dispose();
 		writer.dispose();
 	}
+
+	/**
+	 * Serves heatmap.heatmap as PNG tiles over HTTP until the program is killed
+	 */
+	private static void serve(String inputImageName, int port) throws IOException
+	{
+		// Each render worker gets its own reader over the mapped file so that they can decode in parallel
+		MappedImageFile imageFile = openMappedImageFile(inputImageName);
+		HeatmapTileServer server;
+		int numWorkers = Runtime.getRuntime().availableProcessors();
+		long cacheSizeBytes = 64L * 1024 * 1024;
+		if (imageFile != null)
+		{
+			server = new HeatmapTileServer(imageFile, port, numWorkers, cacheSizeBytes);
+		}
+		else
+		{
+			server = new HeatmapTileServer(openImageReader(inputImageName, false), port, numWorkers, cacheSizeBytes);
+		}
+		server.putHeatmap("heatmap", HeatmapImage.readHeatmapFile(new File("heatmap.heatmap")));
+		server.start();
+	}
+
+	/**
+	 * Opens a PNG reader over the input image. Files are memory-mapped, which avoids
+	 * ImageIO copying the whole compressed image into its stream cache before decoding it.
+	 * Exits if the image can't be found
+	 */
+	private static ImageReader openImageReader(String inputImageName, boolean seekForwardOnly) throws IOException
+	{
+		ImageReader reader = ImageIO.getImageReadersByFormatName("PNG").next();
+		MappedImageFile imageFile = openMappedImageFile(inputImageName);
+		if (imageFile != null)
+		{
+			reader.setInput(imageFile.newImageInputStream(), seekForwardOnly);
+			return reader;
+		}
+
+		// Resources inside a jar can't be mapped
+		InputStream inputStream = PiecewiseImageReaderWriter.class.getClassLoader().getResourceAsStream(inputImageName);
+		if (inputStream == null)
+		{
+			System.err.println("Error: neither a file nor a resource \"" + inputImageName + "\" exists");
+			System.exit(-1);
+		}
+		reader.setInput(ImageIO.createImageInputStream(inputStream), seekForwardOnly);
+		return reader;
+	}
+
+	/**
+	 * The input image can be given as a file path, or as a program resource (I made it so that the input image is a
+	 * program resource because the point of this program is to test something I want to do to a resource image in a different program)
+	 * @return The mapped image file, or null if it isn't a file or a resource in a directory
+	 */
+	private static MappedImageFile openMappedImageFile(String inputImageName) throws IOException
+	{
+		File file = new File(inputImageName);
+		if (file.isFile())
+		{
+			return new MappedImageFile(file);
+		}
+		URL resource = PiecewiseImageReaderWriter.class.getClassLoader().getResource(inputImageName);
+		if (resource != null && resource.getProtocol().equals("file"))
+		{
+			try
+			{
+				return new MappedImageFile(new File(resource.toURI()));
+			}
+			catch (URISyntaxException e)
+			{
+				return null;
+			}
+		}
+		return null;
+	}
 }
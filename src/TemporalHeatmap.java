@@ -0,0 +1,354 @@
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * Heatmap of recent activity, to be kept alongside the lifetime totals of a HeatmapNew.
+ * <p>
+ * Exponentially decayed heat is applied lazily: tiles are stored relative to a global scale epoch, so that decaying
+ * the whole heatmap is just the passage of time rather than multiplying every tile. Steps are scaled up by how long after the
+ * epoch they happen, and values are scaled back down when read. Once the scale factor gets big, every tile is renormalized
+ * to a new epoch in one pass (about once every 40 half-lives).
+ * <p>
+ * Hard windows ("the last hour") are kept by Windows, which are ring buffers of time buckets with running totals.
+ * Expiring a bucket only touches the tiles that were stepped on during it.
+ */
+public class TemporalHeatmap
+{
+	private static final double RENORMALIZE_SCALE = 1e12;
+	private static final double PRUNE_VALUE = 1e-3; // Tiles decayed below this are dropped when renormalizing
+
+	private final double decayRate; // Per millisecond
+	private final HashMap<Point, Double> decayedHashMap = new HashMap<>();
+	private final List<Window> windows = new ArrayList<>();
+	private long scaleEpochMillis;
+	// Uniform decay doesn't change the order of tiles, so the max only changes when a tile is stepped on
+	private Point maxTile;
+	private double maxScaledVal;
+
+	/**
+	 * @param halfLifeMillis Time it takes for a tile's heat to halve
+	 * @param nowMillis Current time
+	 */
+	public TemporalHeatmap(double halfLifeMillis, long nowMillis)
+	{
+		if (halfLifeMillis <= 0)
+		{
+			throw new IllegalArgumentException("halfLifeMillis must be positive");
+		}
+		this.decayRate = Math.log(2) / halfLifeMillis;
+		this.scaleEpochMillis = nowMillis;
+	}
+
+	/**
+	 * Adds a hard window of recent steps, e.g. addWindow(60_000, 60, nowMillis) for the last hour with one minute precision.
+	 * Only steps made after the window was added are counted.
+	 * @param bucketMillis Duration of each time bucket
+	 * @param numBuckets Number of buckets in the window
+	 */
+	public Window addWindow(long bucketMillis, int numBuckets, long nowMillis)
+	{
+		Window window = new Window(bucketMillis, numBuckets, nowMillis);
+		windows.add(window);
+		return window;
+	}
+
+	/**
+	 * Increments the heatmap's value at the given location by the amount specified
+	 *
+	 * @param x Original RuneScape x-coord
+	 * @param y Original RuneScape y-coord
+	 * @param amount Amount to increment the value by
+	 * @param nowMillis Time of the step(s)
+	 */
+	public void increment(int x, int y, int amount, long nowMillis)
+	{
+		double scale = scaleAt(nowMillis);
+		if (scale > RENORMALIZE_SCALE)
+		{
+			renormalize(nowMillis);
+			scale = 1;
+		}
+		Point tile = new Point(x, y);
+		double newScaledVal = decayedHashMap.getOrDefault(tile, 0.0) + amount * scale;
+		decayedHashMap.put(tile, newScaledVal);
+		if (newScaledVal >= maxScaledVal)
+		{
+			maxScaledVal = newScaledVal;
+			maxTile = tile;
+		}
+
+		for (Window window : windows)
+		{
+			window.increment(tile, amount, nowMillis);
+		}
+	}
+
+	/**
+	 * Returns the decayed heat at the given game world location
+	 */
+	public double getDecayed(int x, int y, long nowMillis)
+	{
+		return decayedHashMap.getOrDefault(new Point(x, y), 0.0) / scaleAt(nowMillis);
+	}
+
+	/**
+	 * @return The game world location with the most decayed heat, or null if there is none
+	 */
+	public Point getDecayedMaxTile()
+	{
+		return maxTile;
+	}
+
+	/**
+	 * @return The decayed heat at getDecayedMaxTile()
+	 */
+	public double getDecayedMaxVal(long nowMillis)
+	{
+		return maxScaledVal / scaleAt(nowMillis);
+	}
+
+	/**
+	 * Creates a regular heatmap of the decayed heat (rounded to whole steps) which can be rendered with HeatmapImage
+	 */
+	public HeatmapNew toDecayedHeatmap(long nowMillis)
+	{
+		double scale = scaleAt(nowMillis);
+		HeatmapNew heatmap = new HeatmapNew();
+		for (Entry<Point, Double> e : decayedHashMap.entrySet())
+		{
+			int value = (int) Math.round(e.getValue() / scale);
+			if (value > 0)
+			{
+				heatmap.set(e.getKey().x, e.getKey().y, value);
+			}
+		}
+		return heatmap;
+	}
+
+	private double scaleAt(long nowMillis)
+	{
+		return Math.exp(decayRate * (nowMillis - scaleEpochMillis));
+	}
+
+	/**
+	 * Moves the scale epoch to the given time, rescaling every tile to match, and drops tiles with negligible heat
+	 */
+	private void renormalize(long nowMillis)
+	{
+		double scale = scaleAt(nowMillis);
+		maxScaledVal = 0;
+		maxTile = null;
+		Iterator<Entry<Point, Double>> it = decayedHashMap.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Entry<Point, Double> e = it.next();
+			double value = e.getValue() / scale;
+			if (value < PRUNE_VALUE)
+			{
+				it.remove();
+				continue;
+			}
+			e.setValue(value);
+			if (value >= maxScaledVal)
+			{
+				maxScaledVal = value;
+				maxTile = e.getKey();
+			}
+		}
+		scaleEpochMillis = nowMillis;
+	}
+
+	/**
+	 * Step counts over a sliding time window, kept as a ring buffer of time buckets plus the running total of the buckets
+	 */
+	public static class Window
+	{
+		private final long bucketMillis;
+		private final HashMap<Point, Integer>[] buckets;
+		private final HashMap<Point, Integer> windowHashMap = new HashMap<>();
+		private long currentBucket; // Absolute bucket number (time / bucketMillis)
+		private int stepCount;
+		private int[] maxVal = {0, 0, 0}, minVal = {0, 0, 0}; // {val, x, y}
+		private boolean minMaxOutdated = false;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private Window(long bucketMillis, int numBuckets, long nowMillis)
+		{
+			if (bucketMillis <= 0 || numBuckets <= 0)
+			{
+				throw new IllegalArgumentException("bucketMillis and numBuckets must be positive");
+			}
+			this.bucketMillis = bucketMillis;
+			this.buckets = new HashMap[numBuckets];
+			for (int i = 0; i < numBuckets; i++)
+			{
+				buckets[i] = new HashMap<>();
+			}
+			this.currentBucket = Math.floorDiv(nowMillis, bucketMillis);
+		}
+
+		public long getDurationMillis()
+		{
+			return bucketMillis * buckets.length;
+		}
+
+		private void increment(Point tile, int amount, long nowMillis)
+		{
+			advance(nowMillis);
+			buckets[(int) Math.floorMod(currentBucket, (long) buckets.length)].merge(tile, amount, Integer::sum);
+			int newValue = windowHashMap.merge(tile, amount, Integer::sum);
+			stepCount += amount;
+			if (minMaxOutdated)
+			{
+				return;
+			}
+			if (newValue >= maxVal[0])
+			{
+				maxVal = new int[]{newValue, tile.x, tile.y};
+			}
+			if (minVal[0] == 0 || newValue < minVal[0])
+			{
+				minVal = new int[]{newValue, tile.x, tile.y};
+			}
+			else if (tile.x == minVal[1] && tile.y == minVal[2])
+			{
+				// The min tile might not be the min anymore
+				minMaxOutdated = true;
+			}
+		}
+
+		/**
+		 * Expires the buckets that have fallen out of the window by the given time
+		 */
+		private void advance(long nowMillis)
+		{
+			long targetBucket = Math.floorDiv(nowMillis, bucketMillis);
+			if (targetBucket <= currentBucket)
+			{
+				return;
+			}
+			if (targetBucket - currentBucket >= buckets.length)
+			{
+				// Everything has expired
+				for (HashMap<Point, Integer> bucket : buckets)
+				{
+					bucket.clear();
+				}
+				windowHashMap.clear();
+				stepCount = 0;
+				maxVal = new int[]{0, 0, 0};
+				minVal = new int[]{0, 0, 0};
+				minMaxOutdated = false;
+				currentBucket = targetBucket;
+				return;
+			}
+			while (currentBucket < targetBucket)
+			{
+				currentBucket++;
+				HashMap<Point, Integer> expired = buckets[(int) Math.floorMod(currentBucket, (long) buckets.length)];
+				for (Entry<Point, Integer> e : expired.entrySet())
+				{
+					int newValue = windowHashMap.get(e.getKey()) - e.getValue();
+					if (newValue == 0)
+					{
+						windowHashMap.remove(e.getKey());
+					}
+					else
+					{
+						windowHashMap.put(e.getKey(), newValue);
+					}
+					stepCount -= e.getValue();
+				}
+				if (!expired.isEmpty())
+				{
+					minMaxOutdated = true;
+				}
+				expired.clear();
+			}
+		}
+
+		private void updateMinMax()
+		{
+			int[] newMax = {0, 0, 0};
+			int[] newMin = {0, 0, 0};
+			for (Entry<Point, Integer> e : windowHashMap.entrySet())
+			{
+				int value = e.getValue();
+				if (value >= newMax[0])
+				{
+					newMax = new int[]{value, e.getKey().x, e.getKey().y};
+				}
+				if (newMin[0] == 0 || value < newMin[0])
+				{
+					newMin = new int[]{value, e.getKey().x, e.getKey().y};
+				}
+			}
+			maxVal = newMax;
+			minVal = newMin;
+			minMaxOutdated = false;
+		}
+
+		/**
+		 * Returns the number of steps on the given game world location within the window
+		 */
+		public int get(int x, int y, long nowMillis)
+		{
+			advance(nowMillis);
+			return windowHashMap.getOrDefault(new Point(x, y), 0);
+		}
+
+		public int getStepCount(long nowMillis)
+		{
+			advance(nowMillis);
+			return stepCount;
+		}
+
+		/**
+		 * @return int array holding {maxVal, maxX, maxY} where the latter two are the coordinate at which the max value exists
+		 */
+		public int[] getMaxVal(long nowMillis)
+		{
+			advance(nowMillis);
+			if (minMaxOutdated)
+			{
+				updateMinMax();
+			}
+			return maxVal;
+		}
+
+		/**
+		 * @return int array holding {minVal, minX, minY} where the latter two are the coordinate at which the minimum NON-ZERO value exists
+		 */
+		public int[] getMinVal(long nowMillis)
+		{
+			advance(nowMillis);
+			if (minMaxOutdated)
+			{
+				updateMinMax();
+			}
+			return minVal;
+		}
+
+		/**
+		 * Creates a regular heatmap of the steps within the window which can be rendered with HeatmapImage
+		 */
+		public HeatmapNew toHeatmap(long nowMillis)
+		{
+			advance(nowMillis);
+			HeatmapNew heatmap = new HeatmapNew();
+			for (Entry<Point, Integer> e : windowHashMap.entrySet())
+			{
+				heatmap.setFast(e.getKey().x, e.getKey().y, e.getValue());
+			}
+			heatmap.stepCount = stepCount;
+			heatmap.maxVal = getMaxVal(nowMillis).clone();
+			// The min is left at HeatmapNew's default of 1 step, like a heatmap built with set(), since HeatmapImage scales
+			// the colours from 1 step up rather than from the exact min
+			return heatmap;
+		}
+	}
+}